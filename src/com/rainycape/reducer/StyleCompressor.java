@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer;
+
+import com.yahoo.platform.yui.compressor.CssCompressor;
+
+import org.apache.commons.io.IOUtils;
+import org.lesscss.LessCompiler;
+import org.lesscss.LessException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Minifies CSS and compiles LESS to minified CSS. The LESS compiler is
+ * expensive to set up, so it's only created the first time a LESS source
+ * is compiled.
+ *
+ * compressCss keeps no state and may be called from any thread, but the
+ * LESS compiler isn't thread safe, so callers compiling LESS from several
+ * threads must give each thread its own instance.
+ */
+public final class StyleCompressor {
+  private static final int WRAP_AT_COLUMN = 80;
+
+  private LessCompiler lessCompiler;
+
+  public String compressCss(Reader reader) throws IOException {
+    CssCompressor css = new CssCompressor(reader);
+    StringWriter sw = new StringWriter();
+    css.compress(sw, WRAP_AT_COLUMN);
+    return sw.toString();
+  }
+
+  public String compileLess(Reader reader) throws IOException {
+    try {
+      String css = getLessCompiler().compile(IOUtils.toString(reader));
+      // It seems the LESS compiler replaces "\n" with "\\n",
+      // which is invalid CSS.
+      return compressCss(new StringReader(css.replace("\\n", "")));
+    } catch (LessException e) {
+      throw new IOException(e.getMessage(), e.getCause());
+    }
+  }
+
+  private LessCompiler getLessCompiler() {
+    if (lessCompiler == null) {
+      lessCompiler = new LessCompiler();
+    }
+    return lessCompiler;
+  }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.build;
+
+import com.rainycape.reducer.JsCompressor;
+import com.rainycape.reducer.StyleCompressor;
+import com.rainycape.reducer.servlets.ErrorCollector;
+
+import org.mozilla.javascript.EvaluatorException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Minifies every JS, CSS and LESS file under a source directory into an
+ * output directory, using all available cores. Outputs keep their relative
+ * path (LESS files become CSS) or, with -hash, get the first characters of
+ * their content hash inserted before the extension.
+ *
+ * A manifest kept in the output directory records what every output was
+ * built from. Sources whose size and modification time match the manifest,
+ * and which were last modified before it was written, are not even read, so
+ * rebuilding a large tree after touching a single file only costs a
+ * directory walk and one compilation.
+ *
+ * Bundles concatenate the outputs of several sources, in the given order,
+ * into a single file and are only rewritten when one of their members
+ * changes.
+ */
+public final class AssetBuilder {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String DEFAULT_MANIFEST = "reducer-manifest.txt";
+  private static final int HASHED_NAME_LENGTH = 10;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<StyleCompressor> styleCompressor =
+      new ThreadLocal<StyleCompressor>() {
+        @Override
+        protected StyleCompressor initialValue() {
+          return new StyleCompressor();
+        }
+      };
+
+  private final Path sourceDir;
+  private final Path outputDir;
+  private final Path manifestFile;
+  private final int threads;
+  private final boolean hashNames;
+  private final Map<String, List<String>> bundles;
+
+  public AssetBuilder(Path sourceDir, Path outputDir, Path manifestFile,
+      int threads, boolean hashNames, Map<String, List<String>> bundles) {
+    this.sourceDir = sourceDir.toAbsolutePath().normalize();
+    this.outputDir = outputDir.toAbsolutePath().normalize();
+    this.manifestFile = manifestFile != null ? manifestFile
+        : this.outputDir.resolve(DEFAULT_MANIFEST);
+    this.threads = threads;
+    this.hashNames = hashNames;
+    this.bundles = bundles;
+  }
+
+  /**
+   * Source file found while walking the source directory.
+   */
+  private static final class Source {
+    final String name;
+    final Path path;
+    final AssetType type;
+    final long size;
+    final long lastModified;
+
+    Source(String name, Path path, AssetType type, long size,
+        long lastModified) {
+      this.name = name;
+      this.path = path;
+      this.type = type;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * Runs the build and returns true if every source and bundle was built
+   * successfully. Errors are reported on stderr.
+   */
+  public boolean build() throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    Files.createDirectories(outputDir);
+    final Manifest previous = Manifest.load(manifestFile);
+    Manifest current = new Manifest();
+    boolean ok = true;
+    int upToDate = 0;
+    int failed = 0;
+    List<Source> sources = findSources();
+
+    // Sources sharing an output (x.css and x.less) would overwrite each
+    // other, so none of them is built.
+    Map<String, List<String>> sourceOutputs =
+        new HashMap<String, List<String>>();
+    for (Source source : sources) {
+      String output = source.type.outputPathFor(source.name);
+      List<String> names = sourceOutputs.get(output);
+      if (names == null) {
+        names = new ArrayList<String>();
+        sourceOutputs.put(output, names);
+      }
+      names.add(source.name);
+    }
+
+    Map<String, Future<Manifest.Entry>> pending =
+        new LinkedHashMap<String, Future<Manifest.Entry>>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (final Source source : sources) {
+        final Manifest.Entry entry = previous.getSources().get(source.name);
+        List<String> names =
+            sourceOutputs.get(source.type.outputPathFor(source.name));
+        if (names.size() > 1) {
+          System.err.println(source.name + ": output "
+              + source.type.outputPathFor(source.name) + " is shared by "
+              + names);
+          ok = false;
+          failed++;
+          // Like a failed build, keep whatever was built before.
+          if (entry != null) {
+            current.getSources().put(source.name, entry);
+          }
+          continue;
+        }
+        if (entry != null
+            && previous.isUpToDate(entry, source.size, source.lastModified)
+            && entry.output.equals(sourceOutputName(source, entry.outputHash))
+            && Files.exists(outputDir.resolve(entry.output))) {
+          current.getSources().put(source.name, entry);
+          upToDate++;
+          continue;
+        }
+        pending.put(source.name, executor.submit(
+            new Callable<Manifest.Entry>() {
+              @Override
+              public Manifest.Entry call() throws Exception {
+                return buildSource(source, entry);
+              }
+            }));
+      }
+      for (Map.Entry<String, Future<Manifest.Entry>> e : pending.entrySet()) {
+        Manifest.Entry entry;
+        try {
+          entry = e.getValue().get();
+        } catch (ExecutionException ex) {
+          System.err.println(e.getKey() + ": " + ex.getCause());
+          entry = null;
+        }
+        if (entry == null) {
+          ok = false;
+          failed++;
+          // Keep whatever was built before, its size and modification time
+          // won't match so it'll be retried next time.
+          entry = previous.getSources().get(e.getKey());
+          if (entry == null) {
+            continue;
+          }
+        }
+        current.getSources().put(e.getKey(), entry);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Map.Entry<String, List<String>> e : bundles.entrySet()) {
+      if (!isSafeBundleName(e.getKey())) {
+        System.err.println(e.getKey()
+            + ": bundle names must be relative to the output directory");
+        ok = false;
+        continue;
+      }
+      if (sourceOutputs.containsKey(e.getKey())) {
+        System.err.println(e.getKey()
+            + ": bundle name collides with the output of a source");
+        ok = false;
+        continue;
+      }
+      Manifest.Entry entry = buildBundle(e.getKey(), e.getValue(),
+          previous.getBundles().get(e.getKey()), current);
+      if (entry == null) {
+        ok = false;
+        continue;
+      }
+      current.getBundles().put(e.getKey(), entry);
+    }
+
+    deleteStaleOutputs(previous, current);
+    current.save(manifestFile);
+    System.out.println((sources.size() - upToDate - failed) + " built, "
+        + failed + " failed, " + upToDate + " up to date in "
+        + (System.currentTimeMillis() - start) + "ms");
+    return ok;
+  }
+
+  private List<Source> findSources() throws IOException {
+    final List<Source> sources = new ArrayList<Source>();
+    Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir,
+          BasicFileAttributes attrs) {
+        // The output directory might live inside the source directory.
+        if (dir.equals(outputDir)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        AssetType type = AssetType.forName(file.getFileName().toString());
+        if (type != null && attrs.isRegularFile()) {
+          sources.add(new Source(relativeName(sourceDir, file), file, type,
+              attrs.size(), attrs.lastModifiedTime().toMillis()));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return sources;
+  }
+
+  /**
+   * Builds a single source. If its contents hash to the same value recorded
+   * in the manifest (e.g. it was only touched) the previous output is reused,
+   * renamed if -hash was toggled since it was written. Returns null if the
+   * source couldn't be compiled.
+   */
+  private Manifest.Entry buildSource(Source source, Manifest.Entry previous)
+      throws IOException {
+    byte[] input = Files.readAllBytes(source.path);
+    String inputHash = sha1(input);
+    if (previous != null && previous.inputHash.equals(inputHash)
+        && Files.exists(outputDir.resolve(previous.output))) {
+      String outputName = sourceOutputName(source, previous.outputHash);
+      rename(previous.output, outputName);
+      return new Manifest.Entry(source.size, source.lastModified, inputHash,
+          previous.outputHash, outputName);
+    }
+
+    StringReader reader = new StringReader(new String(input, UTF_8));
+    String compiled;
+    switch (source.type) {
+      case JS:
+        ErrorCollector errorCollector = new ErrorCollector();
+        StringWriter writer = new StringWriter();
+        try {
+          new JsCompressor().compress(reader, writer, errorCollector);
+        } catch (EvaluatorException e) {
+          StringBuilder errors = new StringBuilder(source.name + ": Errors:");
+          for (String i : errorCollector.getErrors()) {
+            errors.append(i);
+          }
+          System.err.println(errors);
+          return null;
+        }
+        compiled = writer.toString();
+        break;
+      case LESS:
+        compiled = styleCompressor.get().compileLess(reader);
+        break;
+      default:
+        compiled = styleCompressor.get().compressCss(reader);
+        break;
+    }
+
+    byte[] output = compiled.getBytes(UTF_8);
+    String outputHash = sha1(output);
+    String outputName = sourceOutputName(source, outputHash);
+    write(outputName, output);
+    return new Manifest.Entry(source.size, source.lastModified, inputHash,
+        outputHash, outputName);
+  }
+
+  /**
+   * Returns true if the given bundle name is a relative path which stays
+   * inside the output directory.
+   */
+  private boolean isSafeBundleName(String name) {
+    Path path;
+    try {
+      path = Paths.get(name);
+    } catch (InvalidPathException e) {
+      return false;
+    }
+    if (path.isAbsolute() || path.getFileName() == null) {
+      return false;
+    }
+    for (Path element : path) {
+      if (element.toString().equals("..")) {
+        return false;
+      }
+    }
+    return outputDir.resolve(path).normalize().startsWith(outputDir);
+  }
+
+  /**
+   * Concatenates the outputs of the given sources. The bundle's input hash
+   * is derived from its members' output hashes, so it's only rewritten when
+   * one of them changes. Returns null if any member is missing.
+   */
+  private Manifest.Entry buildBundle(String name, List<String> members,
+      Manifest.Entry previous, Manifest current) throws IOException {
+    List<Manifest.Entry> entries = new ArrayList<Manifest.Entry>();
+    StringBuilder memberHashes = new StringBuilder();
+    for (String member : members) {
+      Manifest.Entry entry = current.getSources().get(member);
+      if (entry == null) {
+        System.err.println(name + ": unknown bundle member " + member);
+        return null;
+      }
+      entries.add(entry);
+      memberHashes.append(entry.outputHash).append('\n');
+    }
+    String inputHash = sha1(memberHashes.toString().getBytes(UTF_8));
+    if (previous != null && previous.inputHash.equals(inputHash)
+        && Files.exists(outputDir.resolve(previous.output))) {
+      String outputName = bundleOutputName(name, previous.outputHash);
+      rename(previous.output, outputName);
+      return new Manifest.Entry(-1, -1, inputHash, previous.outputHash,
+          outputName);
+    }
+
+    ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+    for (Manifest.Entry entry : entries) {
+      bundle.write(Files.readAllBytes(outputDir.resolve(entry.output)));
+      bundle.write('\n');
+    }
+    byte[] output = bundle.toByteArray();
+    String outputHash = sha1(output);
+    String outputName = bundleOutputName(name, outputHash);
+    write(outputName, output);
+    return new Manifest.Entry(-1, -1, inputHash, outputHash, outputName);
+  }
+
+  /**
+   * Removes outputs recorded in the previous manifest which aren't produced
+   * anymore, like old hashed names or outputs of deleted sources.
+   */
+  private void deleteStaleOutputs(Manifest previous, Manifest current)
+      throws IOException {
+    Set<String> live = new HashSet<String>();
+    for (Manifest.Entry entry : current.getSources().values()) {
+      live.add(entry.output);
+    }
+    for (Manifest.Entry entry : current.getBundles().values()) {
+      live.add(entry.output);
+    }
+    List<Manifest.Entry> old = new ArrayList<Manifest.Entry>();
+    old.addAll(previous.getSources().values());
+    old.addAll(previous.getBundles().values());
+    for (Manifest.Entry entry : old) {
+      if (!live.contains(entry.output)) {
+        Files.deleteIfExists(outputDir.resolve(entry.output));
+      }
+    }
+  }
+
+  private String sourceOutputName(Source source, String outputHash) {
+    return outputName(source.type.outputPathFor(source.name),
+        source.type.getOutputExtension(), outputHash);
+  }
+
+  private String bundleOutputName(String name, String outputHash) {
+    int dot = name.lastIndexOf('.');
+    String extension = dot > name.lastIndexOf('/') ? name.substring(dot) : "";
+    return outputName(name, extension, outputHash);
+  }
+
+  private String outputName(String name, String extension, String hash) {
+    if (!hashNames) {
+      return name;
+    }
+    String base = name.substring(0, name.length() - extension.length());
+    return base + "." + hash.substring(0, HASHED_NAME_LENGTH) + extension;
+  }
+
+  /**
+   * Moves a previous output to its new name, when the naming mode changed.
+   */
+  private void rename(String from, String to) throws IOException {
+    if (from.equals(to)) {
+      return;
+    }
+    Path path = outputDir.resolve(to);
+    Files.createDirectories(path.getParent());
+    Files.move(outputDir.resolve(from), path,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void write(String name, byte[] contents) throws IOException {
+    Path path = outputDir.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents);
+  }
+
+  private static String relativeName(Path dir, Path file) {
+    return dir.relativize(file).toString().replace(File.separatorChar, '/');
+  }
+
+  private static String sha1(byte[] data) {
+    MessageDigest sha1;
+    try {
+      sha1 = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] digest = sha1.digest(data);
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  private static void usage() {
+    System.err.println("Usage: AssetBuilder [options] <source dir> <output dir>"
+        + "\n"
+        + "\n  -j <n>                  number of worker threads"
+        + "\n                          (default: number of cores)"
+        + "\n  -hash                   insert the content hash into output names"
+        + "\n  -manifest <file>        manifest location"
+        + "\n                          (default: <output dir>/" + DEFAULT_MANIFEST
+        + ")"
+        + "\n  -bundle <name>=<a>,<b>  concatenate the outputs of the given"
+        + "\n                          sources into <name>, may be repeated");
+    System.exit(2);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean hashNames = false;
+    Path manifestFile = null;
+    Map<String, List<String>> bundles =
+        new LinkedHashMap<String, List<String>>();
+    List<String> dirs = new ArrayList<String>();
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-hash")) {
+        hashNames = true;
+      } else if (arg.equals("-j") && i + 1 < args.length) {
+        try {
+          threads = Integer.parseInt(args[++i]);
+        } catch (NumberFormatException e) {
+          usage();
+        }
+        if (threads < 1) {
+          usage();
+        }
+      } else if (arg.equals("-manifest") && i + 1 < args.length) {
+        manifestFile = Paths.get(args[++i]);
+      } else if (arg.equals("-bundle") && i + 1 < args.length) {
+        String[] spec = args[++i].split("=", 2);
+        if (spec.length != 2 || spec[0].isEmpty() || spec[1].isEmpty()) {
+          usage();
+        }
+        bundles.put(spec[0], Arrays.asList(spec[1].split(",")));
+      } else if (arg.startsWith("-")) {
+        usage();
+      } else {
+        dirs.add(arg);
+      }
+    }
+    if (dirs.size() != 2) {
+      usage();
+    }
+
+    AssetBuilder builder = new AssetBuilder(Paths.get(dirs.get(0)),
+        Paths.get(dirs.get(1)), manifestFile, threads, hashNames, bundles);
+    if (!builder.build()) {
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.build;
+
+/**
+ * The kinds of sources the builder knows how to minify, keyed by file
+ * extension. LESS sources are written out as CSS.
+ */
+public enum AssetType {
+  JS(".js", ".js"),
+  CSS(".css", ".css"),
+  LESS(".less", ".css");
+
+  private final String sourceExtension;
+  private final String outputExtension;
+
+  private AssetType(String sourceExtension, String outputExtension) {
+    this.sourceExtension = sourceExtension;
+    this.outputExtension = outputExtension;
+  }
+
+  public String getOutputExtension() {
+    return outputExtension;
+  }
+
+  /**
+   * Returns the type for the given file name, or null if it isn't a source
+   * we minify.
+   */
+  public static AssetType forName(String name) {
+    for (AssetType type : values()) {
+      if (name.endsWith(type.sourceExtension)) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the output path for the given source path, with the extension
+   * replaced by this type's output extension.
+   */
+  public String outputPathFor(String path) {
+    return path.substring(0, path.length() - sourceExtension.length())
+        + outputExtension;
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.build;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records, for every source and bundle produced by a build, the hashes of
+ * its input and output and where the output was written. Sources also keep
+ * their size and modification time, so a later build can skip unchanged
+ * files without reading them.
+ *
+ * The manifest is a plain text file with one tab separated entry per line:
+ * kind, name, size, modification time, input hash, output hash and output
+ * path, all paths being relative and '/' separated.
+ *
+ * Like git's index, the manifest's own modification time tells which
+ * entries can be trusted: a source modified in the same timestamp tick the
+ * manifest was written in might have changed again after it was read,
+ * without its size or modification time telling.
+ */
+final class Manifest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String HEADER = "# reducer manifest v1";
+  private static final String SOURCE = "source";
+  private static final String BUNDLE = "bundle";
+
+  static final class Entry {
+    final long size;
+    final long lastModified;
+    final String inputHash;
+    final String outputHash;
+    final String output;
+
+    Entry(long size, long lastModified, String inputHash, String outputHash,
+        String output) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.inputHash = inputHash;
+      this.outputHash = outputHash;
+      this.output = output;
+    }
+
+    boolean isSameFile(long size, long lastModified) {
+      return this.size == size && this.lastModified == lastModified;
+    }
+  }
+
+  private final Map<String, Entry> sources = new TreeMap<String, Entry>();
+  private final Map<String, Entry> bundles = new TreeMap<String, Entry>();
+  private long lastWritten = Long.MIN_VALUE;
+
+  Map<String, Entry> getSources() {
+    return sources;
+  }
+
+  Map<String, Entry> getBundles() {
+    return bundles;
+  }
+
+  /**
+   * Returns the modification time of the file this manifest was loaded
+   * from, or Long.MIN_VALUE if it wasn't loaded from one.
+   */
+  long getLastWritten() {
+    return lastWritten;
+  }
+
+  /**
+   * Returns true if the source recorded in the given entry can be assumed
+   * unchanged because its size and modification time still match, and it
+   * had last been modified strictly before this manifest was written.
+   */
+  boolean isUpToDate(Entry entry, long size, long lastModified) {
+    return entry.isSameFile(size, lastModified) && lastModified < lastWritten;
+  }
+
+  /**
+   * Loads the manifest at the given path. A missing or unreadable manifest
+   * yields an empty one, so everything gets rebuilt.
+   */
+  static Manifest load(Path file) throws IOException {
+    Manifest manifest = new Manifest();
+    if (!Files.isRegularFile(file)) {
+      return manifest;
+    }
+    // Read the modification time first, so the manifest can't look newer
+    // than the entries it was loaded with.
+    long lastWritten = Files.getLastModifiedTime(file).toMillis();
+    try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+      String line = reader.readLine();
+      if (!HEADER.equals(line)) {
+        return manifest;
+      }
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 7) {
+          return new Manifest();
+        }
+        Entry entry;
+        try {
+          entry = new Entry(Long.parseLong(fields[2]),
+              Long.parseLong(fields[3]), fields[4], fields[5], fields[6]);
+        } catch (NumberFormatException e) {
+          return new Manifest();
+        }
+        if (SOURCE.equals(fields[0])) {
+          manifest.sources.put(fields[1], entry);
+        } else if (BUNDLE.equals(fields[0])) {
+          manifest.bundles.put(fields[1], entry);
+        }
+      }
+    }
+    manifest.lastWritten = lastWritten;
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest to a temporary file and moves it over the given
+   * path, so an interrupted build never leaves a truncated manifest behind.
+   */
+  void save(Path file) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      writer.write(HEADER);
+      writer.write('\n');
+      writeEntries(writer, SOURCE, sources);
+      writeEntries(writer, BUNDLE, bundles);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeEntries(Writer writer, String kind,
+      Map<String, Entry> entries) throws IOException {
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      writer.write(kind + "\t" + e.getKey() + "\t" + entry.size + "\t"
+          + entry.lastModified + "\t" + entry.inputHash + "\t"
+          + entry.outputHash + "\t" + entry.output + "\n");
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects the samples for one scenario. Every sample has two timings:
+ * the latency, measured from the time the request was scheduled to be sent,
+ * and the service time, measured from when it actually was. When the server
+ * falls behind, requests queue up on the client and only the former shows
+ * it, so it's the one to use for capacity planning.
+ *
+ * Samples are kept in full, in microseconds, which is fine for the few
+ * hundred thousand requests a run produces.
+ */
+final class LatencyRecorder {
+  private long[] latencies = new long[1024];
+  private long[] serviceTimes = new long[1024];
+  private int count;
+  private int serviceCount;
+  private int errors;
+
+  /**
+   * Records a sample. A negative service time means the request was never
+   * sent, so it only counts towards the latencies.
+   */
+  synchronized void record(long latencyMicros, long serviceMicros,
+      boolean error) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = latencyMicros;
+    if (serviceMicros >= 0) {
+      if (serviceCount == serviceTimes.length) {
+        serviceTimes = Arrays.copyOf(serviceTimes, serviceCount * 2);
+      }
+      serviceTimes[serviceCount++] = serviceMicros;
+    }
+    if (error) {
+      errors++;
+    }
+  }
+
+  synchronized int getCount() {
+    return count;
+  }
+
+  synchronized int getErrors() {
+    return errors;
+  }
+
+  /**
+   * Returns the latencies at the given percentiles (0-100), in microseconds.
+   */
+  synchronized long[] latencyPercentiles(double... percentiles) {
+    return percentiles(latencies, count, percentiles);
+  }
+
+  /**
+   * Returns the service times at the given percentiles (0-100), in
+   * microseconds.
+   */
+  synchronized long[] serviceTimePercentiles(double... percentiles) {
+    return percentiles(serviceTimes, serviceCount, percentiles);
+  }
+
+  /**
+   * Returns the nearest-rank percentiles of the first count samples, or
+   * zeros if there are none.
+   */
+  private static long[] percentiles(long[] samples, int count,
+      double[] percentiles) {
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    long[] values = new long[percentiles.length];
+    for (int i = 0; i < percentiles.length; i++) {
+      if (count == 0) {
+        continue;
+      }
+      // 99.9 / 100 * 1000 is 999.0000000000001 in floating point, so
+      // allow for rounding errors before taking the ceiling.
+      int rank = (int) Math.ceil(percentiles[i] * count / 100 - 1e-9);
+      values[i] = sorted[Math.min(Math.max(rank, 1), count) - 1];
+    }
+    return values;
+  }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.load;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a mix of requests against a running instance at a fixed arrival
+ * rate and reports latency, throughput and error rate for each kind of
+ * request.
+ *
+ * The load is open loop: request n is due at start + n / rate whether or
+ * not earlier requests have completed, and its latency is measured from that
+ * time rather than from when a connection became free to send it. A server
+ * that stalls therefore shows up in the percentiles instead of silently
+ * lowering the request rate (coordinated omission). Service times, measured
+ * from the actual send, are reported as well for comparison.
+ *
+ * Requests are JS, CSS or LESS, sent either as form arguments (like
+ * scripts/post.py), as multipart uploads or as URLs served by a local
+ * {@link StubOrigin}. Hits resend contents the server has already seen;
+ * misses append a unique comment (or query string, for URLs) so they can't
+ * be answered from memcache.
+ */
+public final class LoadGenerator {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String BOUNDARY = "----reducer-load-generator";
+  private static final int TIMEOUT_MILLIS = 30 * 1000;
+  private static final double[] PERCENTILES = { 50, 99, 99.9, 100 };
+
+  private enum Type {
+    JS("/js", ".js"),
+    CSS("/css", ".css"),
+    LESS("/less", ".less");
+
+    final String path;
+    final String extension;
+
+    private Type(String path, String extension) {
+      this.path = path;
+      this.extension = extension;
+    }
+  }
+
+  private enum Source {
+    FORM, UPLOAD, URL
+  }
+
+  /**
+   * A corpus file, with its form encoded contents computed up front so hits
+   * don't pay for encoding large files on every request.
+   */
+  private static final class Item {
+    final String name;
+    final String contents;
+    final String encoded;
+
+    Item(String name, String contents) throws IOException {
+      this.name = name;
+      this.contents = contents;
+      this.encoded = URLEncoder.encode(contents, "UTF-8");
+    }
+  }
+
+  private final String server;
+  private final double rate;
+  private final int durationSecs;
+  private final int warmupSecs;
+  private final int connections;
+  private final int[] typeWeights;
+  private final int[] sourceWeights;
+  private final double hitRatio;
+  private final Map<Type, List<Item>> corpus;
+  private final String originHost;
+  private final Random random;
+
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  private final Map<String, LatencyRecorder> recorders =
+      new TreeMap<String, LatencyRecorder>();
+  private final LatencyRecorder total = new LatencyRecorder();
+  private final AtomicLong lastCompletion = new AtomicLong();
+  private final Set<Shot> outstanding =
+      Collections.newSetFromMap(new ConcurrentHashMap<Shot, Boolean>());
+  private String originUrl;
+  private long measureFrom;
+
+  private LoadGenerator(String server, double rate, int durationSecs,
+      int warmupSecs, int connections, int[] typeWeights, int[] sourceWeights,
+      double hitRatio, Map<Type, List<Item>> corpus, String originHost,
+      long seed) {
+    this.server = server;
+    this.rate = rate;
+    this.durationSecs = durationSecs;
+    this.warmupSecs = warmupSecs;
+    this.connections = connections;
+    this.typeWeights = typeWeights;
+    this.sourceWeights = sourceWeights;
+    this.hitRatio = hitRatio;
+    this.corpus = corpus;
+    this.originHost = originHost;
+    this.random = new Random(seed);
+    for (Type type : Type.values()) {
+      for (Source source : Source.values()) {
+        recorders.put(scenario(type, source, true), new LatencyRecorder());
+        recorders.put(scenario(type, source, false), new LatencyRecorder());
+      }
+    }
+  }
+
+  private static String scenario(Type type, Source source, boolean hit) {
+    return (type + " " + source + " " + (hit ? "hit" : "miss"))
+        .toLowerCase(Locale.ENGLISH);
+  }
+
+  private void run() throws Exception {
+    Map<String, String> files = new HashMap<String, String>();
+    for (List<Item> items : corpus.values()) {
+      for (Item item : items) {
+        files.put(item.name, item.contents);
+      }
+    }
+    StubOrigin origin = new StubOrigin(originHost, files);
+    origin.start();
+    originUrl = origin.getUrl();
+    lastCompletion.set(System.nanoTime());
+
+    ExecutorService executor = Executors.newFixedThreadPool(connections);
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSecs);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSecs);
+    long maxLag = 0;
+
+    System.out.println("Sending " + rate + " requests/s to " + server
+        + " for " + durationSecs + "s after " + warmupSecs + "s of warmup");
+    for (long seq = 0;; seq++) {
+      long intended = start + seq * intervalNanos;
+      if (intended >= end) {
+        break;
+      }
+      long now;
+      while ((now = System.nanoTime()) < intended) {
+        LockSupport.parkNanos(intended - now);
+      }
+      maxLag = Math.max(maxLag, now - intended);
+
+      Type type = Type.values()[pick(typeWeights)];
+      Source source = Source.values()[pick(sourceWeights)];
+      boolean hit = random.nextDouble() < hitRatio;
+      List<Item> items = corpus.get(type);
+      Item item = items.get(random.nextInt(items.size()));
+      Shot shot = new Shot(intended, seq, type, source, hit, item);
+      outstanding.add(shot);
+      executor.execute(shot);
+    }
+    executor.shutdown();
+    int abandoned = 0;
+    if (!executor.awaitTermination(TIMEOUT_MILLIS * 2,
+        TimeUnit.MILLISECONDS)) {
+      // Whatever is still queued or in flight is what the server couldn't
+      // keep up with, leaving it out would make an overloaded run look
+      // better than it was.
+      executor.shutdownNow();
+      long now = System.nanoTime();
+      for (Shot shot : outstanding) {
+        if (shot.finish(now, false)) {
+          abandoned++;
+        }
+      }
+    }
+    origin.stop();
+
+    report(maxLag, abandoned);
+  }
+
+  /**
+   * A single scheduled request. It's recorded exactly once, either when it
+   * completes or, if it's still queued or in flight when the run gives up
+   * waiting, as an error.
+   */
+  private final class Shot implements Runnable {
+    final long intended;
+    final long seq;
+    final Type type;
+    final Source source;
+    final boolean hit;
+    final Item item;
+    final AtomicBoolean recorded = new AtomicBoolean();
+    volatile boolean started;
+    volatile long sent;
+
+    Shot(long intended, long seq, Type type, Source source, boolean hit,
+        Item item) {
+      this.intended = intended;
+      this.seq = seq;
+      this.type = type;
+      this.source = source;
+      this.hit = hit;
+      this.item = item;
+    }
+
+    @Override
+    public void run() {
+      sent = System.nanoTime();
+      started = true;
+      boolean ok;
+      try {
+        ok = send(type, source, hit, item, seq);
+      } catch (IOException | RuntimeException e) {
+        ok = false;
+      }
+      finish(System.nanoTime(), ok);
+    }
+
+    /**
+     * Records the request as done at the given time, unless it was already
+     * recorded. Returns true if it was recorded by this call and falls in the
+     * measured part of the run.
+     */
+    boolean finish(long done, boolean ok) {
+      if (!recorded.compareAndSet(false, true)) {
+        return false;
+      }
+      outstanding.remove(this);
+      if (intended < measureFrom) {
+        return false;
+      }
+      long latency = TimeUnit.NANOSECONDS.toMicros(done - intended);
+      long serviceTime = started
+          ? TimeUnit.NANOSECONDS.toMicros(done - sent) : -1;
+      recorders.get(scenario(type, source, hit))
+          .record(latency, serviceTime, !ok);
+      total.record(latency, serviceTime, !ok);
+      updateLastCompletion(done);
+      return true;
+    }
+  }
+
+  private void updateLastCompletion(long done) {
+    long last;
+    while ((last = lastCompletion.get()) < done) {
+      if (lastCompletion.compareAndSet(last, done)) {
+        break;
+      }
+    }
+  }
+
+  private int pick(int[] weights) {
+    int sum = 0;
+    for (int weight : weights) {
+      sum += weight;
+    }
+    int r = random.nextInt(sum);
+    for (int i = 0; i < weights.length; i++) {
+      r -= weights[i];
+      if (r < 0) {
+        return i;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  /**
+   * Sends a single request and reads the whole response. Returns true if
+   * the server answered with a 200.
+   */
+  private boolean send(Type type, Source source, boolean hit, Item item,
+      long seq) throws IOException {
+    String miss = runId + "-" + seq;
+    String contentType = "application/x-www-form-urlencoded";
+    String body;
+    switch (source) {
+      case UPLOAD:
+        contentType = "multipart/form-data; boundary=" + BOUNDARY;
+        body = "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file1\"; filename=\""
+            + item.name + "\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n"
+            + item.contents + (hit ? "" : "\n/* " + miss + " */\n") + "\r\n"
+            + "--" + BOUNDARY + "--\r\n";
+        break;
+      case URL:
+        body = "file1=" + URLEncoder.encode(originUrl + item.name
+            + (hit ? "" : "?" + miss), "UTF-8");
+        break;
+      default:
+        body = "file1=" + item.encoded
+            + (hit ? "" : URLEncoder.encode("\n/* " + miss + " */\n", "UTF-8"));
+        break;
+    }
+    byte[] bytes = body.getBytes(UTF_8);
+
+    // Leave caching enabled on the connection, otherwise HttpURLConnection
+    // sends Pragma: no-cache and the server bypasses memcache.
+    HttpURLConnection conn = (HttpURLConnection) new URL("http://" + server
+        + type.path).openConnection();
+    conn.setConnectTimeout(TIMEOUT_MILLIS);
+    conn.setReadTimeout(TIMEOUT_MILLIS);
+    conn.setDoOutput(true);
+    conn.setFixedLengthStreamingMode(bytes.length);
+    conn.setRequestProperty("Content-Type", contentType);
+    OutputStream out = conn.getOutputStream();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    int status = conn.getResponseCode();
+    InputStream in = status >= 400 ? conn.getErrorStream()
+        : conn.getInputStream();
+    if (in != null) {
+      // Drain the response so the connection can be reused. How many idle
+      // connections are kept is set by http.maxConnections, see main().
+      try {
+        IOUtils.copy(in, new NullOutputStream());
+      } finally {
+        in.close();
+      }
+    }
+    return status == 200;
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+
+  private void report(long maxLagNanos, int abandoned) {
+    int count = total.getCount();
+    double elapsedSecs = Math.max(lastCompletion.get() - measureFrom,
+        TimeUnit.SECONDS.toNanos(durationSecs)) / 1e9;
+
+    System.out.println();
+    System.out.println(String.format(Locale.ENGLISH,
+        "%-18s %8s %8s %7s %9s %9s %9s %9s",
+        "latency (ms)", "requests", "errors", "err %", "p50", "p99", "p999",
+        "max"));
+    for (Map.Entry<String, LatencyRecorder> e : recorders.entrySet()) {
+      if (e.getValue().getCount() > 0) {
+        printRow(e.getKey(), e.getValue(),
+            e.getValue().latencyPercentiles(PERCENTILES));
+      }
+    }
+    printRow("total", total, total.latencyPercentiles(PERCENTILES));
+    printRow("service time", total, total.serviceTimePercentiles(PERCENTILES));
+    System.out.println();
+    System.out.println(String.format(Locale.ENGLISH,
+        "throughput: %.1f requests/s (target %.1f), error rate: %.2f%%",
+        count / elapsedSecs, rate, percent(total.getErrors(), count)));
+    if (abandoned > 0) {
+      System.out.println(String.format(Locale.ENGLISH,
+          "warning: %d requests were still pending %ds after the last one was"
+          + " due and were counted as errors", abandoned,
+          TimeUnit.MILLISECONDS.toSeconds(TIMEOUT_MILLIS * 2)));
+    }
+    if (maxLagNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+      System.out.println(String.format(Locale.ENGLISH,
+          "warning: the load generator fell up to %.1fms behind schedule",
+          maxLagNanos / 1e6));
+    }
+  }
+
+  private static void printRow(String name, LatencyRecorder recorder,
+      long[] percentiles) {
+    System.out.println(String.format(Locale.ENGLISH,
+        "%-18s %8d %8d %7.2f %9.1f %9.1f %9.1f %9.1f", name,
+        recorder.getCount(), recorder.getErrors(),
+        percent(recorder.getErrors(), recorder.getCount()),
+        percentiles[0] / 1000.0, percentiles[1] / 1000.0,
+        percentiles[2] / 1000.0, percentiles[3] / 1000.0));
+  }
+
+  private static double percent(int part, int whole) {
+    return whole == 0 ? 0 : 100.0 * part / whole;
+  }
+
+  private static Map<Type, List<Item>> loadCorpus(File dir, int[] typeWeights)
+      throws IOException {
+    Map<Type, List<Item>> corpus = new HashMap<Type, List<Item>>();
+    for (Type type : Type.values()) {
+      corpus.put(type, new ArrayList<Item>());
+    }
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("can't list corpus directory " + dir);
+    }
+    for (File file : files) {
+      String name = file.getName();
+      // Skip already minified files, they're only useful as test outputs.
+      if (!file.isFile() || name.contains("-min.")) {
+        continue;
+      }
+      for (Type type : Type.values()) {
+        if (name.endsWith(type.extension)) {
+          corpus.get(type).add(new Item(name,
+              FileUtils.readFileToString(file, "UTF-8")));
+        }
+      }
+    }
+    for (Type type : Type.values()) {
+      if (typeWeights[type.ordinal()] > 0 && corpus.get(type).isEmpty()) {
+        throw new IOException("no " + type.extension + " files in " + dir);
+      }
+    }
+    return corpus;
+  }
+
+  /**
+   * Parses a weight list like "js=6,css=3" into weights indexed by the
+   * ordinals of the given enum's constants.
+   */
+  private static <E extends Enum<E>> int[] parseWeights(String spec,
+      Class<E> enumClass) {
+    E[] constants = enumClass.getEnumConstants();
+    int[] weights = new int[constants.length];
+    int sum = 0;
+    for (String part : spec.split(",")) {
+      String[] kv = part.split("=", 2);
+      int weight = kv.length == 2 ? Integer.parseInt(kv[1]) : 1;
+      if (weight < 0) {
+        throw new IllegalArgumentException("negative weight in " + spec);
+      }
+      weights[Enum.valueOf(enumClass, kv[0].toUpperCase(Locale.ENGLISH))
+          .ordinal()] = weight;
+      sum += weight;
+    }
+    if (sum == 0) {
+      throw new IllegalArgumentException("all weights are zero in " + spec);
+    }
+    return weights;
+  }
+
+  private static void usage() {
+    System.err.println("Usage: LoadGenerator [options]"
+        + "\n"
+        + "\n  -server <host:port>  instance to test (default: $SERVER or"
+        + "\n                       localhost:8888)"
+        + "\n  -rate <n>            requests per second (default: 50)"
+        + "\n  -duration <secs>     measured duration (default: 30)"
+        + "\n  -warmup <secs>       unmeasured warmup (default: 5)"
+        + "\n  -connections <n>     concurrent connections (default: 64)"
+        + "\n  -types <mix>         request types (default: js=6,css=3,less=1)"
+        + "\n  -sources <mix>       how contents are sent"
+        + "\n                       (default: form=6,upload=2,url=2)"
+        + "\n  -hits <ratio>        fraction of cache hits (default: 0.8)"
+        + "\n  -corpus <dir>        .js, .css and .less files to send"
+        + "\n                       (default: tests/testdata)"
+        + "\n  -origin-host <host>  address the stub origin listens on and the"
+        + "\n                       server fetches from (default: 127.0.0.1)"
+        + "\n  -seed <n>            random seed (default: 1)");
+    System.exit(2);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String server = System.getenv("SERVER") != null ? System.getenv("SERVER")
+        : "localhost:8888";
+    double rate = 50;
+    int duration = 30;
+    int warmup = 5;
+    int connections = 64;
+    String types = "js=6,css=3,less=1";
+    String sources = "form=6,upload=2,url=2";
+    double hits = 0.8;
+    String corpusDir = "tests/testdata";
+    String originHost = "127.0.0.1";
+    long seed = 1;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (i + 1 == args.length || !arg.startsWith("-")) {
+          usage();
+        }
+        String value = args[++i];
+        if (arg.equals("-server")) {
+          server = value;
+        } else if (arg.equals("-rate")) {
+          rate = Double.parseDouble(value);
+        } else if (arg.equals("-duration")) {
+          duration = Integer.parseInt(value);
+        } else if (arg.equals("-warmup")) {
+          warmup = Integer.parseInt(value);
+        } else if (arg.equals("-connections")) {
+          connections = Integer.parseInt(value);
+        } else if (arg.equals("-types")) {
+          types = value;
+        } else if (arg.equals("-sources")) {
+          sources = value;
+        } else if (arg.equals("-hits")) {
+          hits = Double.parseDouble(value);
+        } else if (arg.equals("-corpus")) {
+          corpusDir = value;
+        } else if (arg.equals("-origin-host")) {
+          originHost = value;
+        } else if (arg.equals("-seed")) {
+          seed = Long.parseLong(value);
+        } else {
+          usage();
+        }
+      }
+      if (rate <= 0 || duration <= 0 || warmup < 0 || connections < 1
+          || hits < 0 || hits > 1) {
+        usage();
+      }
+    } catch (IllegalArgumentException e) {
+      usage();
+    }
+
+    int[] typeWeights = null;
+    int[] sourceWeights = null;
+    try {
+      typeWeights = parseWeights(types, Type.class);
+      sourceWeights = parseWeights(sources, Source.class);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Invalid mix: " + e.getMessage());
+      usage();
+    }
+    Map<Type, List<Item>> corpus = loadCorpus(new File(corpusDir),
+        typeWeights);
+    // HttpURLConnection only keeps http.maxConnections (5 by default) idle
+    // connections per host, so with more concurrent connections most
+    // requests would pay for a new TCP connection and skew service times.
+    // This has to be set before the first connection is opened.
+    System.setProperty("http.maxConnections", Integer.toString(connections));
+    new LoadGenerator(server, rate, duration, warmup, connections,
+        typeWeights, sourceWeights, hits, corpus, originHost, seed).run();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP server standing in for the remote origins the service fetches
+ * URL parameters from, so remote-URL scenarios don't depend on the network.
+ *
+ * Files are served by name. A request with a query string gets the query
+ * appended as a comment, so every distinct URL also yields distinct contents
+ * and misses the service's output cache.
+ */
+final class StubOrigin {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  StubOrigin(String host, final Map<String, String> files)
+      throws IOException {
+    server = HttpServer.create(new InetSocketAddress(host, 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String contents = files.get(exchange.getRequestURI().getPath()
+            .substring(1));
+        if (contents == null) {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+          return;
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+          contents += "\n/* " + query + " */\n";
+        }
+        byte[] body = contents.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+  }
+
+  void start() {
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns the base URL files are served from, ending with a slash.
+   */
+  String getUrl() {
+    InetSocketAddress address = server.getAddress();
+    return "http://" + address.getHostString() + ":" + address.getPort() + "/";
+  }
+}
@@ -52,7 +52,8 @@ import java.util.logging.Logger;
 @SuppressWarnings("serial")
 public abstract class BaseServlet extends HttpServlet {
   private static final String EXPIRE_URLS_PARAM = "expire_urls";
-  private static final String CONTENT_TYPE_ERROR = "text/plain";
+  protected static final String CONTENT_TYPE_ERROR =
+      "text/plain; charset=utf-8";
   private static final int STATUS_CODE_ERROR = 400;
   private static final int DISABLE_URL_CACHE_VALUE = 0;
   private static final int DEFAULT_URL_CACHE_TIME_SECS = 300;
@@ -88,22 +89,24 @@ public abstract class BaseServlet extends HttpServlet {
 
     final String key = getKeyForContents(filecontents);
 
-    Object cachedCopy;
+    EncodedResponse cachedCopy;
 
-    if (useMemcache && (cachedCopy = memcache.get(key)) !=
-        null) {
+    if (useMemcache && (cachedCopy =
+        EncodedResponse.fromRecord(memcache.get(key))) != null) {
       maybeSetHttpCacheHeaders(req, resp);
-      render(resp, (String) cachedCopy);
+      cachedCopy.writeTo(resp);
     } else {
       StringReader reader = new StringReader(filecontents);
       Response results = process(resp, reader);
+      EncodedResponse encoded = EncodedResponse.of(results.getContentType(),
+          results.getBody());
       if (results.isCacheable()) {
         maybeSetHttpCacheHeaders(req, resp);
         if (useMemcache) {
-          memcache.put(key, results.getBody());
+          memcache.put(key, encoded.getRecord());
         }
       }
-      render(resp, results.getBody());
+      encoded.writeTo(resp);
     }
   }
 
@@ -301,9 +304,6 @@ public abstract class BaseServlet extends HttpServlet {
     }
   }
 
-  protected abstract void render(HttpServletResponse resp, String response)
-      throws IOException;
-
   protected abstract Response process(HttpServletResponse resp,
                                       StringReader reader) throws IOException;
 }
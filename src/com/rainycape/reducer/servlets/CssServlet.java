@@ -15,25 +15,21 @@
  */
 package com.rainycape.reducer.servlets;
 
-import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.rainycape.reducer.StyleCompressor;
 
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.StringWriter;
 
 @SuppressWarnings("serial")
 public class CssServlet extends BaseServlet {
-  private static final int WRAP_AT_COLUMN = 80;
   private static final String MIME_TYPE_CSS = "text/css; charset=utf-8";
 
-  protected String compile(final StringReader sr) throws IOException {
+  private static final StyleCompressor compressor = new StyleCompressor();
 
-    CssCompressor css = new CssCompressor(sr);
-    StringWriter sw = new StringWriter();
-    css.compress(sw, WRAP_AT_COLUMN);
-    return sw.toString();
+  protected String compile(final StringReader sr) throws IOException {
+    return compressor.compressCss(sr);
   }
 
   @Override
@@ -42,19 +38,12 @@ public class CssServlet extends BaseServlet {
 
     try {
       String css = compile(csssr);
-      resp.setContentType(MIME_TYPE_CSS);
-      return Response.of(true, css);
+      return Response.of(true, MIME_TYPE_CSS, css);
     } catch (IOException e) {
       resp.setStatus(404);
-      resp.setContentType("text/plain");
-      return Response.of(false, e.getMessage());
+      // Not every compiler error comes with a message.
+      String message = e.getMessage() != null ? e.getMessage() : e.toString();
+      return Response.of(false, CONTENT_TYPE_ERROR, message);
     }
   }
-
-  @Override
-  protected final void render(final HttpServletResponse resp,
-      final String response) throws IOException {
-    resp.setContentType(MIME_TYPE_CSS);
-    resp.getWriter().print(response);
-  }
 }
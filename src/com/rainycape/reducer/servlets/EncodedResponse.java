@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.servlets;
+
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A response body already encoded as UTF-8, stored together with its content
+ * type in a single byte array which is what gets cached in memcache. The
+ * record is laid out as:
+ *
+ * <pre>
+ * version (1 byte) | content type length (2 bytes) | content type | body
+ * </pre>
+ *
+ * Serving a cached response writes the body straight out of the record, so
+ * hits need neither transcoding nor a copy of the body. Misses size the
+ * record up front and encode straight into it, so the body is only copied
+ * once.
+ */
+final class EncodedResponse {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 3;
+
+  private final byte[] record;
+  private final String contentType;
+  private final int bodyOffset;
+
+  private EncodedResponse(byte[] record, String contentType, int bodyOffset) {
+    this.record = record;
+    this.contentType = contentType;
+    this.bodyOffset = bodyOffset;
+  }
+
+  static EncodedResponse of(String contentType, String body) {
+    int typeLength = encodedLength(contentType);
+    int bodyOffset = HEADER_LENGTH + typeLength;
+    byte[] record = new byte[bodyOffset + encodedLength(body)];
+    record[0] = VERSION;
+    record[1] = (byte) (typeLength >> 8);
+    record[2] = (byte) typeLength;
+    ByteBuffer out = ByteBuffer.wrap(record, HEADER_LENGTH,
+        record.length - HEADER_LENGTH);
+    // Replace unpaired surrogates with '?', like String.getBytes does.
+    CharsetEncoder encoder = UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    encode(encoder, contentType, out);
+    encoder.reset();
+    encode(encoder, body, out);
+    if (out.hasRemaining()) {
+      throw new IllegalStateException("UTF-8 length mismatch");
+    }
+    return new EncodedResponse(record, contentType, bodyOffset);
+  }
+
+  /**
+   * Returns the number of bytes s takes in UTF-8, counting unpaired
+   * surrogates as the single byte they're replaced with.
+   */
+  private static int encodedLength(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static void encode(CharsetEncoder encoder, String s,
+      ByteBuffer out) {
+    CoderResult result = encoder.encode(CharBuffer.wrap(s), out, true);
+    if (result.isUnderflow()) {
+      result = encoder.flush(out);
+    }
+    if (!result.isUnderflow()) {
+      throw new IllegalStateException("UTF-8 length mismatch");
+    }
+  }
+
+  /**
+   * Returns the response stored in the given cached value, or null if it
+   * isn't a record this version understands (e.g. it was cached by an older
+   * version of the service).
+   */
+  static EncodedResponse fromRecord(Object cached) {
+    if (!(cached instanceof byte[])) {
+      return null;
+    }
+    byte[] record = (byte[]) cached;
+    if (record.length < HEADER_LENGTH || record[0] != VERSION) {
+      return null;
+    }
+    int typeLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+    int bodyOffset = HEADER_LENGTH + typeLength;
+    if (bodyOffset > record.length) {
+      return null;
+    }
+    String contentType = new String(record, HEADER_LENGTH, typeLength, UTF_8);
+    return new EncodedResponse(record, contentType, bodyOffset);
+  }
+
+  byte[] getRecord() {
+    return record;
+  }
+
+  String getContentType() {
+    return contentType;
+  }
+
+  int getBodyLength() {
+    return record.length - bodyOffset;
+  }
+
+  String getBody() {
+    return new String(record, bodyOffset, getBodyLength(), UTF_8);
+  }
+
+  void writeTo(HttpServletResponse resp) throws IOException {
+    resp.setContentType(contentType);
+    resp.setContentLength(getBodyLength());
+    resp.getOutputStream().write(record, bodyOffset, getBodyLength());
+  }
+}
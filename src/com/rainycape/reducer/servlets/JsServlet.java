@@ -36,26 +36,19 @@ public class JsServlet extends BaseServlet {
     final StringWriter writer = new StringWriter();
     final ErrorCollector errorCollector = new ErrorCollector();
     boolean cacheable = true;
+    String contentType = MIME_TYPE_JAVASCRIPT;
 
     try {
-      resp.setContentType(MIME_TYPE_JAVASCRIPT);
       new JsCompressor().compress(jssr, writer, errorCollector);
     } catch (EvaluatorException ee) {
       cacheable = false;
+      contentType = CONTENT_TYPE_ERROR;
       resp.setStatus(404);
-      resp.setContentType("text/plain");
       writer.write("Errors:\n");
       for (String i : errorCollector.getErrors()) {
         writer.write(i + "\n");
       }
     }
-    return Response.of(cacheable, writer.toString());
-  }
-
-  @Override
-  protected final void render(final HttpServletResponse resp,
-      final String response) throws IOException {
-    resp.setContentType(MIME_TYPE_JAVASCRIPT);
-    resp.getWriter().write(response);
+    return Response.of(cacheable, contentType, writer.toString());
   }
 }
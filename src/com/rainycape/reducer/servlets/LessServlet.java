@@ -1,26 +1,24 @@
 package com.rainycape.reducer.servlets;
 
+import com.rainycape.reducer.StyleCompressor;
+
 import java.io.IOException;
 import java.io.StringReader;
 
-import org.apache.commons.io.IOUtils;
-import org.lesscss.LessCompiler;
-import org.lesscss.LessException;
-
 @SuppressWarnings("serial")
 public class LessServlet extends CssServlet {
 
-  private static LessCompiler compiler = new LessCompiler();
+  // The LESS compiler isn't thread safe, so every request thread gets its own.
+  private static final ThreadLocal<StyleCompressor> compressor =
+      new ThreadLocal<StyleCompressor>() {
+        @Override
+        protected StyleCompressor initialValue() {
+          return new StyleCompressor();
+        }
+      };
 
   @Override
   protected final String compile(final StringReader sr) throws IOException {
-    try {
-      String css = compiler.compile(IOUtils.toString(sr));
-      // It seems the LESS compiler replaces "\n" with "\\n",
-      // which is invalid CSS.
-      return super.compile(new StringReader(css.replace("\\n", "")));
-    } catch (LessException e) {
-      throw new IOException(e.getMessage(), e.getCause());
-    }
+    return compressor.get().compileLess(sr);
   }
 }
@@ -18,14 +18,17 @@ package com.rainycape.reducer.servlets;
 
 public class Response {
   private boolean cacheable;
+  private String contentType;
   private String body;
 
   private Response() {
   }
 
-  public static Response of(boolean cacheable, String body) {
+  public static Response of(boolean cacheable, String contentType,
+      String body) {
     Response response = new Response();
     response.cacheable = cacheable;
+    response.contentType = contentType;
     response.body = body;
     return response;
   }
@@ -34,6 +37,10 @@ public class Response {
     return cacheable;
   }
 
+  public String getContentType() {
+    return contentType;
+  }
+
   public String getBody() {
     return body;
   }
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.build;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AssetBuilderTest extends TestCase {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Arbitrary timestamps, set explicitly so the tests don't depend on the
+  // file system's timestamp granularity.
+  private static final long OLD_TIME = 1000000000000L;
+  private static final long NEW_TIME = 1100000000000L;
+
+  private Path root;
+  private Path src;
+  private Path out;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Keep both directories under a single root, so anything escaping the
+    // output directory is still ours to check and clean up.
+    root = Files.createTempDirectory("reducer");
+    src = root.resolve("src");
+    out = root.resolve("out");
+    writeSource("lib/a.js", "function add (first, second) { return first"
+        + " + second; }\n");
+    writeSource("b.css", "b {\n  color : red ;\n}\n");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(root.toFile());
+  }
+
+  private void writeSource(String name, String contents) throws IOException {
+    Path path = src.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents.getBytes(UTF_8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(OLD_TIME));
+  }
+
+  private boolean build(boolean hashNames, String... bundle) throws Exception {
+    Map<String, List<String>> bundles =
+        new LinkedHashMap<String, List<String>>();
+    if (bundle.length > 0) {
+      bundles.put(bundle[0],
+          Arrays.asList(bundle).subList(1, bundle.length));
+    }
+    return new AssetBuilder(src, out, null, 2, hashNames, bundles).build();
+  }
+
+  private Manifest manifest() throws IOException {
+    return Manifest.load(out.resolve("reducer-manifest.txt"));
+  }
+
+  private String read(String name) throws IOException {
+    return new String(Files.readAllBytes(out.resolve(name)), UTF_8);
+  }
+
+  /**
+   * Returns the relative names of all the files in the output directory,
+   * except the manifest, sorted.
+   */
+  private List<String> outputs() throws IOException {
+    List<String> names = new ArrayList<String>();
+    for (Object file : FileUtils.listFiles(out.toFile(), null, true)) {
+      String name = out.relativize(((File) file).toPath()).toString()
+          .replace(File.separatorChar, '/');
+      if (!name.equals("reducer-manifest.txt")) {
+        names.add(name);
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  /**
+   * Marks an output with a known modification time, so we can tell whether
+   * a later build rewrote it.
+   */
+  private void mark(String name) throws IOException {
+    Files.setLastModifiedTime(out.resolve(name),
+        FileTime.fromMillis(OLD_TIME));
+  }
+
+  private boolean isMarked(String name) throws IOException {
+    return Files.getLastModifiedTime(out.resolve(name)).toMillis()
+        == OLD_TIME;
+  }
+
+  public final void testBuild() throws Exception {
+    assertTrue(build(false));
+    assertEquals(Arrays.asList("b.css", "lib/a.js"), outputs());
+    assertEquals("function add(b,a){return b+a};", read("lib/a.js"));
+    assertEquals("b{color:red}", read("b.css"));
+
+    Manifest.Entry entry = manifest().getSources().get("lib/a.js");
+    assertEquals("lib/a.js", entry.output);
+    assertEquals(OLD_TIME, entry.lastModified);
+    assertEquals(Files.size(src.resolve("lib/a.js")), entry.size);
+  }
+
+  public final void testUnchangedSourcesAreSkipped() throws Exception {
+    assertTrue(build(false));
+    mark("lib/a.js");
+    // Even a corrupt output isn't noticed, since the source isn't read.
+    Files.write(out.resolve("b.css"), "corrupt".getBytes(UTF_8));
+    mark("b.css");
+
+    assertTrue(build(false));
+    assertTrue(isMarked("lib/a.js"));
+    assertEquals("corrupt", read("b.css"));
+  }
+
+  public final void testTouchedSourceReusesOutput() throws Exception {
+    assertTrue(build(false));
+    mark("lib/a.js");
+    Files.setLastModifiedTime(src.resolve("lib/a.js"),
+        FileTime.fromMillis(NEW_TIME));
+
+    assertTrue(build(false));
+    assertTrue(isMarked("lib/a.js"));
+    assertEquals(NEW_TIME,
+        manifest().getSources().get("lib/a.js").lastModified);
+  }
+
+  public final void testRacilyCleanSourceIsRebuilt() throws Exception {
+    Files.setLastModifiedTime(src.resolve("b.css"),
+        FileTime.fromMillis(NEW_TIME));
+    assertTrue(build(false));
+    // Pretend the manifest was written in the same tick b.css was last
+    // modified in, which then changes again without its size or
+    // modification time telling.
+    Files.setLastModifiedTime(out.resolve("reducer-manifest.txt"),
+        FileTime.fromMillis(NEW_TIME));
+    writeSource("b.css", "b {\n  color : tan ;\n}\n");
+    Files.setLastModifiedTime(src.resolve("b.css"),
+        FileTime.fromMillis(NEW_TIME));
+
+    assertTrue(build(false));
+    assertEquals("b{color:tan}", read("b.css"));
+  }
+
+  public final void testChangedSourceIsRebuilt() throws Exception {
+    assertTrue(build(false));
+    writeSource("b.css", "b {\n  color : blue ;\n}\n");
+    Files.setLastModifiedTime(src.resolve("b.css"),
+        FileTime.fromMillis(NEW_TIME));
+
+    assertTrue(build(false));
+    assertEquals("b{color:blue}", read("b.css"));
+  }
+
+  public final void testMissingOutputIsRebuilt() throws Exception {
+    assertTrue(build(false));
+    Files.delete(out.resolve("b.css"));
+
+    assertTrue(build(false));
+    assertEquals("b{color:red}", read("b.css"));
+  }
+
+  public final void testToggleHashNames() throws Exception {
+    assertTrue(build(false, "all.js", "lib/a.js"));
+    assertEquals(Arrays.asList("all.js", "b.css", "lib/a.js"), outputs());
+
+    assertTrue(build(true, "all.js", "lib/a.js"));
+    Manifest manifest = manifest();
+    String a = manifest.getSources().get("lib/a.js").output;
+    String b = manifest.getSources().get("b.css").output;
+    String all = manifest.getBundles().get("all.js").output;
+    assertTrue(a, a.matches("lib/a\\.[0-9a-f]{10}\\.js"));
+    assertTrue(b, b.matches("b\\.[0-9a-f]{10}\\.css"));
+    assertTrue(all, all.matches("all\\.[0-9a-f]{10}\\.js"));
+    List<String> expected = new ArrayList<String>(Arrays.asList(a, b, all));
+    Collections.sort(expected);
+    assertEquals(expected, outputs());
+    assertEquals("b{color:red}", read(b));
+
+    assertTrue(build(false, "all.js", "lib/a.js"));
+    assertEquals(Arrays.asList("all.js", "b.css", "lib/a.js"), outputs());
+    assertEquals("lib/a.js", manifest().getSources().get("lib/a.js").output);
+  }
+
+  public final void testDeletedSourceOutputIsRemoved() throws Exception {
+    assertTrue(build(true));
+    String b = manifest().getSources().get("b.css").output;
+    assertTrue(Files.exists(out.resolve(b)));
+    Files.delete(src.resolve("b.css"));
+
+    assertTrue(build(true));
+    assertFalse(Files.exists(out.resolve(b)));
+    assertNull(manifest().getSources().get("b.css"));
+    assertEquals(1, outputs().size());
+  }
+
+  public final void testBundle() throws Exception {
+    writeSource("c.css", "c { margin : 0px }\n");
+    assertTrue(build(false, "all.css", "b.css", "c.css"));
+    assertEquals("b{color:red}\nc{margin:0}\n", read("all.css"));
+    mark("all.css");
+
+    assertTrue(build(false, "all.css", "b.css", "c.css"));
+    assertTrue(isMarked("all.css"));
+
+    writeSource("c.css", "c { margin : 1px }\n");
+    Files.setLastModifiedTime(src.resolve("c.css"),
+        FileTime.fromMillis(NEW_TIME));
+    assertTrue(build(false, "all.css", "b.css", "c.css"));
+    assertEquals("b{color:red}\nc{margin:1px}\n", read("all.css"));
+  }
+
+  public final void testBundleWithUnknownMember() throws Exception {
+    assertFalse(build(false, "all.js", "lib/missing.js"));
+    assertFalse(Files.exists(out.resolve("all.js")));
+  }
+
+  public final void testUnsafeBundleNames() throws Exception {
+    assertFalse(build(false, "../escaped.js", "lib/a.js"));
+    assertFalse(Files.exists(root.resolve("escaped.js")));
+
+    assertFalse(build(false, out.resolve("absolute.js").toString(),
+        "lib/a.js"));
+    assertFalse(Files.exists(out.resolve("absolute.js")));
+
+    // A bundle named like a source output must not replace it.
+    assertFalse(build(false, "b.css", "lib/a.js"));
+    assertEquals("b{color:red}", read("b.css"));
+  }
+
+  public final void testCollidingSourceOutputs() throws Exception {
+    assertTrue(build(false));
+    writeSource("b.less", "b { color: blue; }\n");
+
+    // Neither source is built, and the previous output is kept.
+    assertFalse(build(false));
+    assertEquals("b{color:red}", read("b.css"));
+    assertNotNull(manifest().getSources().get("b.css"));
+    assertNull(manifest().getSources().get("b.less"));
+
+    Files.delete(src.resolve("b.less"));
+    assertTrue(build(false));
+  }
+
+  public final void testCorruptManifestRebuildsEverything() throws Exception {
+    assertTrue(build(false));
+    mark("b.css");
+    Files.write(out.resolve("reducer-manifest.txt"),
+        "garbage\n".getBytes(UTF_8));
+
+    assertTrue(build(false));
+    assertFalse(isMarked("b.css"));
+    assertNotNull(manifest().getSources().get("b.css"));
+  }
+}
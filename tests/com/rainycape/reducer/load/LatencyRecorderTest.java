@@ -0,0 +1,91 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.load;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class LatencyRecorderTest extends TestCase {
+
+  private static LatencyRecorder recordShuffled(int n) {
+    List<Long> samples = new ArrayList<Long>();
+    for (long i = 1; i <= n; i++) {
+      samples.add(i);
+    }
+    Collections.shuffle(samples, new Random(1));
+    LatencyRecorder recorder = new LatencyRecorder();
+    for (long sample : samples) {
+      recorder.record(sample, sample * 10, sample % 100 == 0);
+    }
+    return recorder;
+  }
+
+  private static void assertPercentiles(long[] expected, long[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("percentile #" + i, expected[i], actual[i]);
+    }
+  }
+
+  public final void testThousandSamples() throws Exception {
+    LatencyRecorder recorder = recordShuffled(1000);
+    assertEquals(1000, recorder.getCount());
+    assertEquals(10, recorder.getErrors());
+    assertPercentiles(new long[] { 500, 990, 999, 1000 },
+        recorder.latencyPercentiles(50, 99, 99.9, 100));
+    assertPercentiles(new long[] { 5000, 9900, 9990, 10000 },
+        recorder.serviceTimePercentiles(50, 99, 99.9, 100));
+  }
+
+  public final void testFewSamples() throws Exception {
+    LatencyRecorder recorder = recordShuffled(10);
+    // With fewer samples than the percentile can resolve, the highest ones
+    // are all the maximum.
+    assertPercentiles(new long[] { 1, 5, 10, 10, 10 },
+        recorder.latencyPercentiles(0, 50, 99, 99.9, 100));
+  }
+
+  public final void testSingleSample() throws Exception {
+    LatencyRecorder recorder = new LatencyRecorder();
+    recorder.record(42, 7, false);
+    assertPercentiles(new long[] { 42, 42, 42 },
+        recorder.latencyPercentiles(0, 50, 100));
+  }
+
+  public final void testNoSamples() throws Exception {
+    LatencyRecorder recorder = new LatencyRecorder();
+    assertEquals(0, recorder.getCount());
+    assertPercentiles(new long[] { 0, 0 },
+        recorder.latencyPercentiles(50, 100));
+    assertPercentiles(new long[] { 0, 0 },
+        recorder.serviceTimePercentiles(50, 100));
+  }
+
+  public final void testUnsentRequests() throws Exception {
+    LatencyRecorder recorder = new LatencyRecorder();
+    recorder.record(10, 5, false);
+    recorder.record(2000, -1, true);
+    assertEquals(2, recorder.getCount());
+    assertEquals(1, recorder.getErrors());
+    assertPercentiles(new long[] { 2000 }, recorder.latencyPercentiles(100));
+    // Requests that were never sent have no service time.
+    assertPercentiles(new long[] { 5 }, recorder.serviceTimePercentiles(100));
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.rainycape.reducer.servlets;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+public class EncodedResponseTest extends TestCase {
+
+  /**
+   * Records what's written to a stub HttpServletResponse. Only the methods
+   * EncodedResponse.writeTo calls are implemented.
+   */
+  private static final class RecordingResponse implements InvocationHandler {
+    String contentType;
+    int contentLength = -1;
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        body.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        body.write(b, off, len);
+      }
+    };
+
+    HttpServletResponse newResponse() {
+      return (HttpServletResponse) Proxy.newProxyInstance(
+          HttpServletResponse.class.getClassLoader(),
+          new Class<?>[] { HttpServletResponse.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if (name.equals("setContentType")) {
+        contentType = (String) args[0];
+      } else if (name.equals("setContentLength")) {
+        contentLength = (Integer) args[0];
+      } else if (name.equals("getOutputStream")) {
+        return out;
+      } else {
+        throw new UnsupportedOperationException(name);
+      }
+      return null;
+    }
+  }
+
+  public final void testRoundTrip() throws Exception {
+    String body = "a{content:\"\u00e9\u4e2d\ud83d\ude00\"}";
+    EncodedResponse encoded = EncodedResponse.of("text/css; charset=utf-8",
+        body);
+    assertEquals(body.getBytes("UTF-8").length, encoded.getBodyLength());
+
+    EncodedResponse decoded = EncodedResponse.fromRecord(encoded.getRecord());
+    assertNotNull(decoded);
+    assertEquals("text/css; charset=utf-8", decoded.getContentType());
+    assertEquals(body, decoded.getBody());
+    assertEquals(encoded.getBodyLength(), decoded.getBodyLength());
+  }
+
+  public final void testUnpairedSurrogates() throws Exception {
+    // Encoded as '?', the same as String.getBytes does.
+    String body = "\ud83d|\ude00|\ud83d";
+    EncodedResponse encoded = EncodedResponse.of("text/plain", body);
+    assertEquals("?|?|?", encoded.getBody());
+    assertEquals(body.getBytes("UTF-8").length, encoded.getBodyLength());
+  }
+
+  public final void testWriteTo() throws Exception {
+    String body = "a{content:\"\u00e9\u4e2d\ud83d\ude00\"}";
+    EncodedResponse decoded = EncodedResponse.fromRecord(
+        EncodedResponse.of("text/css; charset=utf-8", body).getRecord());
+    RecordingResponse resp = new RecordingResponse();
+    decoded.writeTo(resp.newResponse());
+
+    assertEquals("text/css; charset=utf-8", resp.contentType);
+    byte[] expected = body.getBytes("UTF-8");
+    assertEquals(expected.length, resp.contentLength);
+    assertTrue(Arrays.equals(expected, resp.body.toByteArray()));
+  }
+
+  public final void testEmptyBody() throws Exception {
+    EncodedResponse decoded = EncodedResponse.fromRecord(
+        EncodedResponse.of("text/plain", "").getRecord());
+    assertNotNull(decoded);
+    assertEquals("text/plain", decoded.getContentType());
+    assertEquals(0, decoded.getBodyLength());
+  }
+
+  public final void testRejectsUnknownRecords() throws Exception {
+    // Values cached as Strings by older versions must be treated as misses.
+    assertNull(EncodedResponse.fromRecord("alert(a);"));
+    assertNull(EncodedResponse.fromRecord(null));
+    assertNull(EncodedResponse.fromRecord(new byte[0]));
+    assertNull(EncodedResponse.fromRecord(new byte[] { 2, 0, 0 }));
+    assertNull(EncodedResponse.fromRecord(new byte[] { 1, 0, 5, 'a' }));
+  }
+}